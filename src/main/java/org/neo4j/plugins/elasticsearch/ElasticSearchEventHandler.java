@@ -1,28 +1,34 @@
 package org.neo4j.plugins.elasticsearch;
 
+import com.google.gson.Gson;
 import io.searchbox.action.BulkableAction;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestResult;
 import io.searchbox.client.JestResultHandler;
 import io.searchbox.core.Bulk;
-import io.searchbox.core.Delete;
 import io.searchbox.core.DocumentResult;
-import io.searchbox.core.Index;
 import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.event.LabelEntry;
 import org.neo4j.graphdb.event.PropertyEntry;
 import org.neo4j.graphdb.event.TransactionData;
 import org.neo4j.graphdb.event.TransactionEventHandler;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ElasticSearchEventHandler implements TransactionEventHandler<Collection<BulkableAction<DocumentResult>>>,
-        JestResultHandler<JestResult> {
+import static org.neo4j.plugins.elasticsearch.EntityChangeSet.DELETE;
+import static org.neo4j.plugins.elasticsearch.EntityChangeSet.INDEX;
+
+public class ElasticSearchEventHandler implements TransactionEventHandler<PendingBulk>, JestResultHandler<JestResult> {
 
     private final static Logger logger = Logger.getLogger(ElasticSearchEventHandler.class.getName());
 
@@ -59,12 +65,23 @@ public class ElasticSearchEventHandler implements TransactionEventHandler<Collec
     /**
      * The prefix of elasticsearch type that stores neo4j nodes.
      */
-    private static final String PREFIX_TYPE_NODE = "type_node_";
+    static final String PREFIX_TYPE_NODE = "type_node_";
 
     /**
      * The prefix of elasticsearch type that stores neo4j relationships.
      */
-    private static final String PREFIX_TYPE_RELATIONSHIP = "type_relationship_";
+    static final String PREFIX_TYPE_RELATIONSHIP = "type_relationship_";
+
+    /**
+     * The maximum number of asynchronous bulk requests of one transaction
+     * waiting for a response. Only the chunks of a transaction past this
+     * number wait, so transactions never wait for each other.
+     */
+    private static final int MAX_IN_FLIGHT_BULKS = 4;
+
+    private final Gson gson = new Gson();
+
+    private final GraphDatabaseService graphDatabaseService;
 
     private final JestClient jestClient;
 
@@ -80,18 +97,39 @@ public class ElasticSearchEventHandler implements TransactionEventHandler<Collec
 
     private final boolean executeAsync;
 
+    private final int bulkActions;
+
+    private final long bulkSizeInBytes;
+
+    private final int spillThreshold;
+
+    private final File spillDirectory;
+
+    private final Set<String> excludedProperties;
+
+    private final AtomicLong skippedWrites = new AtomicLong();
+
     private ElasticSearchEventHandler(Builder builder) {
+        this.graphDatabaseService = builder.graphDatabaseService;
         this.jestClient = builder.jestClient;
         this.indexName = builder.indexName;
         this.syncNodes = builder.syncNodes;
         this.syncRelationships = builder.syncRelationships;
         this.executeAsync = builder.executeAsync;
+        this.bulkActions = builder.bulkActions;
+        this.bulkSizeInBytes = builder.bulkSizeInBytes;
+        this.spillThreshold = builder.spillThreshold;
+        this.spillDirectory = builder.spillDirectory;
+        this.excludedProperties = builder.excludedProperties == null
+                ? Collections.emptySet() : new HashSet<>(builder.excludedProperties);
         this.typeNode = PREFIX_TYPE_NODE + indexName;
         this.typeRelationship = PREFIX_TYPE_RELATIONSHIP + indexName;
     }
 
     public static class Builder {
 
+        private GraphDatabaseService graphDatabaseService;
+
         private JestClient jestClient;
 
         private String indexName;
@@ -102,9 +140,24 @@ public class ElasticSearchEventHandler implements TransactionEventHandler<Collec
 
         private boolean executeAsync;
 
+        private int bulkActions;
+
+        private long bulkSizeInBytes;
+
+        private int spillThreshold;
+
+        private File spillDirectory;
+
+        private Set<String> excludedProperties;
+
         public Builder() {
         }
 
+        public Builder graphDatabaseService(GraphDatabaseService graphDatabaseService) {
+            this.graphDatabaseService = graphDatabaseService;
+            return this;
+        }
+
         public Builder jestClient(JestClient jestClient) {
             this.jestClient = jestClient;
             return this;
@@ -130,11 +183,44 @@ public class ElasticSearchEventHandler implements TransactionEventHandler<Collec
             return this;
         }
 
+        public Builder bulkActions(int bulkActions) {
+            this.bulkActions = bulkActions;
+            return this;
+        }
+
+        public Builder bulkSizeInBytes(long bulkSizeInBytes) {
+            this.bulkSizeInBytes = bulkSizeInBytes;
+            return this;
+        }
+
+        public Builder spillThreshold(int spillThreshold) {
+            this.spillThreshold = spillThreshold;
+            return this;
+        }
+
+        public Builder spillDirectory(File spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
+
+        public Builder excludedProperties(Set<String> excludedProperties) {
+            this.excludedProperties = excludedProperties;
+            return this;
+        }
+
         public ElasticSearchEventHandler build() {
             return new ElasticSearchEventHandler(this);
         }
     }
 
+    /**
+     * Return the number of entity writes skipped because none of their indexed
+     * properties changed.
+     */
+    public long getSkippedWrites() {
+        return skippedWrites.get();
+    }
+
     @Override
     public void completed(JestResult result) {
         if (result.isSucceeded() && result.getErrorMessage() == null) {
@@ -149,159 +235,269 @@ public class ElasticSearchEventHandler implements TransactionEventHandler<Collec
         logger.log(Level.WARNING, "data transfer failed", ex);
     }
 
+    /**
+     * Collect the ids of all changed entities of the transaction first, about
+     * 20 bytes per entity in primitive arrays, and serialize each entity once
+     * afterwards. The serialized documents are what {@link PendingBulk} spills
+     * to disk for large transactions.
+     */
     @Override
-    public Collection<BulkableAction<DocumentResult>> beforeCommit(TransactionData data) throws Exception {
-        Map<SyncDataKey, BulkableAction<DocumentResult>> actions = new LinkedHashMap<>();
-        if (syncNodes) {
-            // all changed nodes
-            collectChangedNodes(actions, data);
-        }
+    public PendingBulk beforeCommit(TransactionData data) throws Exception {
+        PendingBulk pendingBulk = new PendingBulk(indexName, bulkActions, bulkSizeInBytes, spillThreshold,
+                spillDirectory);
+        EntityChangeSet nodeChanges = new EntityChangeSet();
+        EntityChangeSet relationshipChanges = new EntityChangeSet();
+        try {
+            if (syncNodes) {
+                // all changed nodes
+                collectChangedNodes(nodeChanges, data);
+            }
 
-        if (syncRelationships) {
-            // all changed relationships
-            collectChangedRelations(actions, data);
-        }
+            if (syncRelationships) {
+                // all changed relationships
+                collectChangedRelations(relationshipChanges, data);
+            }
 
-        return actions.isEmpty() ? Collections.emptyList() : actions.values();
+            drain(nodeChanges, relationshipChanges, pendingBulk);
+        } catch (Exception e) {
+            pendingBulk.close();
+            throw e;
+        }
+        return pendingBulk;
     }
 
     @Override
-    public void afterCommit(TransactionData data, Collection<BulkableAction<DocumentResult>> state) {
-        if (state.isEmpty()) {
+    public void afterCommit(TransactionData data, PendingBulk state) {
+        if (state == null) {
             return;
         }
 
         try {
-            Bulk bulk = new Bulk.Builder().addAction(state).build();
-            if (executeAsync) {
-                jestClient.executeAsync(bulk, this);
-            } else {
-                jestClient.execute(bulk);
+            if (!state.isEmpty()) {
+                Semaphore inFlightBulks = new Semaphore(MAX_IN_FLIGHT_BULKS);
+                state.forEachChunk(chunk -> execute(chunk, inFlightBulks));
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.log(Level.SEVERE, "data transfer interrupted after commit", e);
         } catch (Exception e) {
             logger.log(Level.SEVERE, "data transfer execution error after commit", e);
+        } finally {
+            state.close();
         }
     }
 
     @Override
-    public void afterRollback(TransactionData data, Collection<BulkableAction<DocumentResult>> state) {
+    public void afterRollback(TransactionData data, PendingBulk state) {
+        if (state != null) {
+            state.close();
+        }
     }
 
-    private void collectChangedNodes(Map<SyncDataKey, BulkableAction<DocumentResult>> actions, TransactionData data) {
+    private void execute(List<BulkableAction<DocumentResult>> chunk, Semaphore inFlightBulks) throws Exception {
+        Bulk bulk = new Bulk.Builder().addAction(chunk).build();
+        if (executeAsync) {
+            // bound the number of chunks of this transaction waiting for a response
+            inFlightBulks.acquire();
+            try {
+                jestClient.executeAsync(bulk, new ChunkResultHandler(inFlightBulks));
+            } catch (RuntimeException e) {
+                inFlightBulks.release();
+                throw e;
+            }
+        } else {
+            jestClient.execute(bulk);
+        }
+    }
+
+    private void collectChangedNodes(EntityChangeSet nodeChanges, TransactionData data) {
         // created nodes
         for (Node node : data.createdNodes()) {
-            String id = id(node);
-            actions.put(key(typeNode, id), indexRequest(id, node));
+            nodeChanges.put(node.getId(), INDEX);
         }
 
         // deleted nodes
         for (Node node : data.deletedNodes()) {
-            String id = id(node);
-            actions.put(key(typeNode, id), deleteRequest(id, node));
+            nodeChanges.put(node.getId(), DELETE);
         }
 
         // assigned labels
         for (LabelEntry labelEntry : data.assignedLabels()) {
             Node node = labelEntry.node();
-            String id = id(node);
-            if (data.isDeleted(labelEntry.node())) {
-                actions.put(key(typeNode, id), deleteRequest(id, node));
-            } else {
-                actions.put(key(typeNode, id), indexRequest(id, labelEntry.node()));
-            }
+            nodeChanges.put(node.getId(), data.isDeleted(node) ? DELETE : INDEX);
         }
 
         // removed labels
         for (LabelEntry labelEntry : data.removedLabels()) {
-            Node node = labelEntry.node();
-            String id = id(node);
-            actions.put(key(typeNode, id), deleteRequest(id, node));
+            nodeChanges.put(labelEntry.node().getId(), DELETE);
         }
 
         // assigned node properties
+        // only allocated once a property change is skipped, which most transactions never do
+        EntityChangeSet skipped = null;
         for (PropertyEntry<Node> propEntry : data.assignedNodeProperties()) {
-            Node node = propEntry.entity();
-            String id = id(node);
-            actions.put(key(typeNode, id), indexRequest(id, node));
+            if (isIndexedChange(propEntry)) {
+                nodeChanges.put(propEntry.entity().getId(), INDEX);
+            } else {
+                skipped = skip(skipped, propEntry.entity().getId());
+            }
         }
 
         // removed node properties
         for (PropertyEntry<Node> propEntry : data.removedNodeProperties()) {
             Node node = propEntry.entity();
-            String id = id(node);
             if (data.isDeleted(node)) {
-                actions.put(key(typeNode, id), deleteRequest(id, node));
+                nodeChanges.put(node.getId(), DELETE);
+            } else if (isIndexedRemoval(propEntry)) {
+                nodeChanges.put(node.getId(), INDEX);
             } else {
-                actions.put(key(typeNode, id), indexRequest(id, node));
+                skipped = skip(skipped, node.getId());
             }
         }
+        countSkipped(skipped, nodeChanges);
     }
 
-    private void collectChangedRelations(Map<SyncDataKey, BulkableAction<DocumentResult>> actions,
-            TransactionData data) {
+    private void collectChangedRelations(EntityChangeSet relationshipChanges, TransactionData data) {
         // created relationships
         for (Relationship relationship : data.createdRelationships()) {
-            String id = id(relationship);
-            actions.put(key(typeRelationship, id), indexRequest(id, relationship));
+            relationshipChanges.put(relationship.getId(), INDEX);
         }
 
         // deleted relationships
         for (Relationship relationship : data.deletedRelationships()) {
-            String id = id(relationship);
-            actions.put(key(typeRelationship, id), deleteRequest(id, relationship));
+            relationshipChanges.put(relationship.getId(), DELETE);
         }
 
         // assigned relationship properties
+        EntityChangeSet skipped = null;
         for (PropertyEntry<Relationship> propEntry : data.assignedRelationshipProperties()) {
-            Relationship relationship = propEntry.entity();
-            String id = id(relationship);
-            actions.put(key(typeRelationship, id), indexRequest(id, relationship));
+            if (isIndexedChange(propEntry)) {
+                relationshipChanges.put(propEntry.entity().getId(), INDEX);
+            } else {
+                skipped = skip(skipped, propEntry.entity().getId());
+            }
         }
 
         // removed relationship properties
         for (PropertyEntry<Relationship> propEntry : data.removedRelationshipProperties()) {
             Relationship relationship = propEntry.entity();
-            String id = id(relationship);
             if (data.isDeleted(relationship)) {
-                actions.put(key(typeRelationship, id), deleteRequest(id, relationship));
+                relationshipChanges.put(relationship.getId(), DELETE);
+            } else if (isIndexedRemoval(propEntry)) {
+                relationshipChanges.put(relationship.getId(), INDEX);
             } else {
-                actions.put(key(typeRelationship, id), indexRequest(id, relationship));
+                skipped = skip(skipped, relationship.getId());
             }
         }
+        countSkipped(skipped, relationshipChanges);
     }
 
-    private SyncDataKey key(String type, String id) {
-        return new SyncDataKey(indexName, type, id);
+    /**
+     * Whether a property assignment affects the elasticsearch document. Changes of
+     * excluded properties are not, and neither are values changed back to the
+     * committed value within the transaction, which the kernel still reports.
+     */
+    private boolean isIndexedChange(PropertyEntry<?> propEntry) {
+        if (excludedProperties.contains(propEntry.key())) {
+            return false;
+        }
+        return !Objects.deepEquals(propEntry.previouslyCommitedValue(), propEntry.value());
     }
 
-    private BulkableAction<DocumentResult> indexRequest(String id, Entity entity) {
-        Index.Builder builder = new Index.Builder(properties(id, entity)).index(indexName).id(id);
-        if (entity instanceof Node) {
-            builder.type(typeNode);
-        } else if (entity instanceof Relationship) {
-            builder.type(typeRelationship);
+    /**
+     * Whether a property removal affects the elasticsearch document, which is
+     * the case if the property was committed before and is not excluded.
+     * {@link PropertyEntry#value()} must not be called for removed properties.
+     */
+    private boolean isIndexedRemoval(PropertyEntry<?> propEntry) {
+        return !excludedProperties.contains(propEntry.key()) && propEntry.previouslyCommitedValue() != null;
+    }
+
+    /**
+     * Record a skipped property change of the given entity, creating the set
+     * of skipped ids on the first one.
+     */
+    private static EntityChangeSet skip(EntityChangeSet skipped, long id) {
+        if (skipped == null) {
+            skipped = new EntityChangeSet();
         }
-        return builder.build();
+        skipped.put(id, INDEX);
+        return skipped;
     }
 
-    private BulkableAction<DocumentResult> deleteRequest(String id, Entity entity) {
-        Delete.Builder builder = new Delete.Builder(id).index(indexName);
-        if (entity instanceof Node) {
-            builder.type(typeNode);
-        } else if (entity instanceof Relationship) {
-            builder.type(typeRelationship);
+    /**
+     * Count the entities whose only changes were skipped property changes,
+     * that is the skipped ids which are not going to be sent. This runs before
+     * the single drain of the transaction, so {@code changes} holds every id
+     * that will be sent.
+     */
+    private void countSkipped(EntityChangeSet skipped, EntityChangeSet changes) {
+        if (skipped == null) {
+            return;
+        }
+        long count = 0;
+        for (int i = 0; i < skipped.size(); i++) {
+            if (!changes.contains(skipped.id(i))) {
+                count++;
+            }
+        }
+        if (count > 0) {
+            skippedWrites.addAndGet(count);
+        }
+    }
+
+    private void drain(EntityChangeSet nodeChanges, EntityChangeSet relationshipChanges, PendingBulk pendingBulk)
+            throws Exception {
+        for (int i = 0; i < nodeChanges.size(); i++) {
+            long nodeId = nodeChanges.id(i);
+            String id = String.valueOf(nodeId);
+            Node node = nodeChanges.operation(i) == INDEX ? findNode(nodeId) : null;
+            if (node == null) {
+                pendingBulk.delete(typeNode, id);
+            } else {
+                pendingBulk.index(typeNode, id, gson.toJson(properties(id, node)));
+            }
+        }
+
+        for (int i = 0; i < relationshipChanges.size(); i++) {
+            long relationshipId = relationshipChanges.id(i);
+            String id = String.valueOf(relationshipId);
+            Relationship relationship = relationshipChanges.operation(i) == INDEX
+                    ? findRelationship(relationshipId) : null;
+            if (relationship == null) {
+                pendingBulk.delete(typeRelationship, id);
+            } else {
+                pendingBulk.index(typeRelationship, id, gson.toJson(properties(id, relationship)));
+            }
+        }
+    }
+
+    /**
+     * Look up a node in the committing transaction, or null if it has been deleted.
+     */
+    private Node findNode(long id) {
+        try {
+            return graphDatabaseService.getNodeById(id);
+        } catch (NotFoundException e) {
+            return null;
         }
-        return builder.build();
     }
 
-    private String id(Entity entity) {
-        return String.valueOf(entity.getId());
+    /**
+     * Look up a relationship in the committing transaction, or null if it has been deleted.
+     */
+    private Relationship findRelationship(long id) {
+        try {
+            return graphDatabaseService.getRelationshipById(id);
+        } catch (NotFoundException e) {
+            return null;
+        }
     }
 
     private Map<String, Object> properties(String id, Entity entity) {
         Map<String, Object> props = new LinkedHashMap<>();
         props.put(ID, id);
-        props.put(PROPERTIES, entity.getAllProperties());
+        props.put(PROPERTIES, indexedProperties(entity));
         if (entity instanceof Node) {
             // node labels
             props.put(LABELS, labels(((Node) entity).getLabels()));
@@ -316,6 +512,16 @@ public class ElasticSearchEventHandler implements TransactionEventHandler<Collec
         return props;
     }
 
+    private Map<String, Object> indexedProperties(Entity entity) {
+        Map<String, Object> properties = entity.getAllProperties();
+        if (excludedProperties.isEmpty()) {
+            return properties;
+        }
+        Map<String, Object> indexed = new HashMap<>(properties);
+        indexed.keySet().removeAll(excludedProperties);
+        return indexed;
+    }
+
     private List<String> labels(Iterable<Label> labels) {
         List<String> list = new LinkedList<>();
         for (Label label : labels) {
@@ -325,50 +531,27 @@ public class ElasticSearchEventHandler implements TransactionEventHandler<Collec
     }
 
     /**
-     * The key of the map which stores changed data before commit.
-     * This is used to avoid duplicate data transformation.
-     * Only data with different index, type and id can be transferred
-     * to elasticsearch.
+     * Handles the response of one asynchronous chunk and frees its slot
+     * among the in-flight chunks of its transaction.
      */
-    private static class SyncDataKey {
+    private class ChunkResultHandler implements JestResultHandler<JestResult> {
 
-        private final String index;
+        private final Semaphore inFlightBulks;
 
-        private final String type;
-
-        private final String id;
-
-        public SyncDataKey(String index, String type, String id) {
-            this.index = index;
-            this.type = type;
-            this.id = id;
+        ChunkResultHandler(Semaphore inFlightBulks) {
+            this.inFlightBulks = inFlightBulks;
         }
 
         @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
-            }
-            if (o == null || getClass() != o.getClass()) {
-                return false;
-            }
-
-            SyncDataKey that = (SyncDataKey) o;
-            if (!index.equals(that.index)) {
-                return false;
-            }
-            if (!type.equals(that.type)) {
-                return false;
-            }
-            return id.equals(that.id);
+        public void completed(JestResult result) {
+            inFlightBulks.release();
+            ElasticSearchEventHandler.this.completed(result);
         }
 
         @Override
-        public int hashCode() {
-            int result = index.hashCode();
-            result = 31 * result + type.hashCode();
-            result = 31 * result + ((id == null) ? 0 : id.hashCode());
-            return result;
+        public void failed(Exception ex) {
+            inFlightBulks.release();
+            ElasticSearchEventHandler.this.failed(ex);
         }
     }
 }
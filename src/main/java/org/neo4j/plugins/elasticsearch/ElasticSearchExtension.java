@@ -4,12 +4,19 @@ import io.searchbox.client.JestClient;
 import io.searchbox.client.JestResult;
 import io.searchbox.indices.CreateIndex;
 import io.searchbox.indices.IndicesExists;
+import org.neo4j.graphdb.DependencyResolver;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.impl.util.Dependencies;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.kernel.lifecycle.LifecycleAdapter;
 
+import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,6 +42,18 @@ public class ElasticSearchExtension extends LifecycleAdapter {
 
     private final Boolean discovery;
 
+    private final Integer bulkActions;
+
+    private final Long bulkSizeInBytes;
+
+    private final Integer spillThreshold;
+
+    private final String spillDirectory;
+
+    private final Duration searchCacheTtl;
+
+    private final String excludedProperties;
+
     private ElasticSearchExtension(Builder builder) {
         this.graphDatabaseService = builder.graphDatabaseService;
         this.host = builder.host;
@@ -45,6 +64,12 @@ public class ElasticSearchExtension extends LifecycleAdapter {
         this.syncRelationships = builder.syncRelationships;
         this.executeAsync = builder.executeAsync;
         this.discovery = builder.discovery;
+        this.bulkActions = builder.bulkActions;
+        this.bulkSizeInBytes = builder.bulkSizeInBytes;
+        this.spillThreshold = builder.spillThreshold;
+        this.spillDirectory = builder.spillDirectory;
+        this.searchCacheTtl = builder.searchCacheTtl;
+        this.excludedProperties = builder.excludedProperties;
     }
 
     public static class Builder {
@@ -67,6 +92,18 @@ public class ElasticSearchExtension extends LifecycleAdapter {
 
         private Boolean executeAsync;
 
+        private Integer bulkActions = 1000;
+
+        private Long bulkSizeInBytes = 5242880L;
+
+        private Integer spillThreshold = 10000;
+
+        private String spillDirectory = "";
+
+        private Duration searchCacheTtl = Duration.ZERO;
+
+        private String excludedProperties = "";
+
         public Builder graphDatabaseService(GraphDatabaseService graphDatabaseService) {
             this.graphDatabaseService = graphDatabaseService;
             return this;
@@ -112,6 +149,36 @@ public class ElasticSearchExtension extends LifecycleAdapter {
             return this;
         }
 
+        public Builder bulkActions(Integer bulkActions) {
+            this.bulkActions = bulkActions;
+            return this;
+        }
+
+        public Builder bulkSizeInBytes(Long bulkSizeInBytes) {
+            this.bulkSizeInBytes = bulkSizeInBytes;
+            return this;
+        }
+
+        public Builder spillThreshold(Integer spillThreshold) {
+            this.spillThreshold = spillThreshold;
+            return this;
+        }
+
+        public Builder spillDirectory(String spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
+
+        public Builder searchCacheTtl(Duration searchCacheTtl) {
+            this.searchCacheTtl = searchCacheTtl;
+            return this;
+        }
+
+        public Builder excludedProperties(String excludedProperties) {
+            this.excludedProperties = excludedProperties;
+            return this;
+        }
+
         public ElasticSearchExtension build() {
             return new ElasticSearchExtension(this);
         }
@@ -121,6 +188,10 @@ public class ElasticSearchExtension extends LifecycleAdapter {
 
     private ElasticSearchEventHandler elasticSearchEventHandler;
 
+    private volatile ElasticSearchSearcher elasticSearchSearcher;
+
+    private boolean registered;
+
     @Override
     public void init() throws Throwable {
         // get JestClient
@@ -143,25 +214,85 @@ public class ElasticSearchExtension extends LifecycleAdapter {
 
         // build ElasticSearchEventHandler
         elasticSearchEventHandler = new ElasticSearchEventHandler.Builder()
+                .graphDatabaseService(graphDatabaseService)
                 .jestClient(jestClient)
                 .indexName(indexName)
                 .syncNodes(syncNodes)
                 .syncRelationships(syncRelationships)
                 .executeAsync(executeAsync)
+                .bulkActions(bulkActions)
+                .bulkSizeInBytes(bulkSizeInBytes)
+                .spillThreshold(spillThreshold)
+                .spillDirectory(spillDirectory == null || spillDirectory.isEmpty() ? null : new File(spillDirectory))
+                .excludedProperties(propertyKeys(excludedProperties))
                 .build();
 
         // register ElasticSearchEventHandler to GraphDatabaseService
         graphDatabaseService.registerTransactionEventHandler(elasticSearchEventHandler);
+
+        // build ElasticSearchSearcher for the search procedures
+        elasticSearchSearcher = new ElasticSearchSearcher.Builder()
+                .jestClient(jestClient)
+                .indexName(indexName)
+                .cacheTtl(searchCacheTtl)
+                .build();
+        registerDependency();
         logger.info("Neo4j elasticsearch plugin registered!");
     }
 
     @Override
     public void shutdown() throws Throwable {
+        elasticSearchSearcher = null;
         this.graphDatabaseService.unregisterTransactionEventHandler(elasticSearchEventHandler);
         this.jestClient.close();
         logger.info("Neo4j elasticsearch plugin shutdown!");
     }
 
+    /**
+     * Return the searcher of the search procedures, or null if the extension
+     * is not running.
+     */
+    ElasticSearchSearcher getSearcher() {
+        return elasticSearchSearcher;
+    }
+
+    /**
+     * Return the number of entity writes skipped because none of their indexed
+     * properties changed.
+     */
+    public long getSkippedWrites() {
+        return elasticSearchEventHandler == null ? 0 : elasticSearchEventHandler.getSkippedWrites();
+    }
+
+    /**
+     * Make this extension resolvable from the dependency resolver of its own
+     * database, where the procedures look it up.
+     */
+    private void registerDependency() {
+        if (registered || !(graphDatabaseService instanceof GraphDatabaseAPI)) {
+            return;
+        }
+        DependencyResolver resolver = ((GraphDatabaseAPI) graphDatabaseService).getDependencyResolver();
+        if (resolver instanceof Dependencies) {
+            ((Dependencies) resolver).satisfyDependency(this);
+            registered = true;
+        } else {
+            logger.warning("Neo4j elasticsearch procedures are unavailable, the dependency resolver is read-only.");
+        }
+    }
+
+    private Set<String> propertyKeys(String keys) {
+        Set<String> set = new HashSet<>();
+        if (keys != null) {
+            for (String key : keys.split(",")) {
+                if (!key.trim().isEmpty()) {
+                    set.add(key.trim());
+                }
+            }
+        }
+        return set;
+    }
+
     private boolean existsIndex(String indexName) throws IOException {
         JestResult result = jestClient.execute(new IndicesExists.Builder(indexName).build());
         return result.isSucceeded();
@@ -5,10 +5,15 @@ import org.neo4j.kernel.configuration.Config;
 import org.neo4j.kernel.extension.KernelExtensionFactory;
 import org.neo4j.kernel.impl.spi.KernelContext;
 import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+
+import java.util.logging.Logger;
 
 public class ElasticSearchKernelExtensionFactory
         extends KernelExtensionFactory<ElasticSearchKernelExtensionFactory.Dependencies> {
 
+    private final static Logger logger = Logger.getLogger(ElasticSearchKernelExtensionFactory.class.getName());
+
     private static final String SERVICE_NAME = "NEO4J_ELASTICSEARCH_INTEGRATION";
 
     public ElasticSearchKernelExtensionFactory() {
@@ -18,9 +23,15 @@ public class ElasticSearchKernelExtensionFactory
     @Override
     public Lifecycle newInstance(KernelContext kernelContext, Dependencies dependencies) {
         Config config = dependencies.getConfig();
+        String host = config.get(ElasticSearchSettings.HOST);
+        if (host == null || host.trim().isEmpty()) {
+            // the plugin is on the classpath but not configured for this database
+            logger.info("Neo4j elasticsearch plugin disabled, " + ElasticSearchSettings.HOST.name() + " is not set.");
+            return new LifecycleAdapter();
+        }
         return new ElasticSearchExtension.Builder()
                 .graphDatabaseService(dependencies.getGraphDatabaseService())
-                .host(config.get(ElasticSearchSettings.HOST))
+                .host(host)
                 .indexName(config.get(ElasticSearchSettings.INDEX_NAME))
                 .numberOfShards(config.get(ElasticSearchSettings.NUMBER_OF_SHARDS))
                 .numberOfReplicas(config.get(ElasticSearchSettings.NUMBER_OF_REPLICAS))
@@ -28,6 +39,12 @@ public class ElasticSearchKernelExtensionFactory
                 .syncNodes(config.get(ElasticSearchSettings.SYNC_NODES))
                 .syncRelationships(config.get(ElasticSearchSettings.SYNC_RELATIONSHIPS))
                 .executeAsync(config.get(ElasticSearchSettings.EXECUTE_ASYNC))
+                .bulkActions(config.get(ElasticSearchSettings.BULK_ACTIONS))
+                .bulkSizeInBytes(config.get(ElasticSearchSettings.BULK_SIZE_IN_BYTES))
+                .spillThreshold(config.get(ElasticSearchSettings.SPILL_THRESHOLD))
+                .spillDirectory(config.get(ElasticSearchSettings.SPILL_DIRECTORY))
+                .searchCacheTtl(config.get(ElasticSearchSettings.SEARCH_CACHE_TTL))
+                .excludedProperties(config.get(ElasticSearchSettings.EXCLUDED_PROPERTIES))
                 .build();
     }
 
@@ -0,0 +1,148 @@
+package org.neo4j.plugins.elasticsearch;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.kernel.impl.util.UnsatisfiedDependencyException;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Description;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Procedures that search elasticsearch with the client of the extension
+ * running in the same database and return the hits as neo4j entities, so that
+ * full-text results can be composed in Cypher.
+ * <p>
+ * The extension is resolved from the database, which requires the procedures
+ * to be allowed by {@code dbms.security.procedures.unrestricted=es.*}.
+ */
+public class ElasticSearchProcedures {
+
+    @Context
+    public GraphDatabaseAPI db;
+
+    @Procedure(name = "es.search", mode = Mode.READ)
+    @Description("es.search(query, size = 10) - search nodes and relationships, yield node, relationship, score")
+    public Stream<EntityResult> search(@Name("query") String query,
+            @Name(value = "size", defaultValue = "10") long size) throws IOException {
+        return hydrate(searcher().search(query, size));
+    }
+
+    @Procedure(name = "es.searchNodes", mode = Mode.READ)
+    @Description("es.searchNodes(query, size = 10) - search nodes, yield node, score")
+    public Stream<NodeResult> searchNodes(@Name("query") String query,
+            @Name(value = "size", defaultValue = "10") long size) throws IOException {
+        return hydrate(searcher().searchNodes(query, size))
+                .map(result -> new NodeResult(result.node, result.score));
+    }
+
+    @Procedure(name = "es.searchRelationships", mode = Mode.READ)
+    @Description("es.searchRelationships(query, size = 10) - search relationships, yield relationship, score")
+    public Stream<RelationshipResult> searchRelationships(@Name("query") String query,
+            @Name(value = "size", defaultValue = "10") long size) throws IOException {
+        return hydrate(searcher().searchRelationships(query, size))
+                .map(result -> new RelationshipResult(result.relationship, result.score));
+    }
+
+    @Procedure(name = "es.stats", mode = Mode.READ)
+    @Description("es.stats() - statistics of the plugin, yield skippedWrites")
+    public Stream<StatsResult> stats() {
+        return Stream.of(new StatsResult(extension().getSkippedWrites()));
+    }
+
+    private ElasticSearchExtension extension() {
+        try {
+            return db.getDependencyResolver().resolveDependency(ElasticSearchExtension.class);
+        } catch (UnsatisfiedDependencyException e) {
+            throw new IllegalStateException("Neo4j elasticsearch plugin is not installed");
+        }
+    }
+
+    private ElasticSearchSearcher searcher() {
+        ElasticSearchSearcher searcher = extension().getSearcher();
+        if (searcher == null) {
+            throw new IllegalStateException("Neo4j elasticsearch plugin is not running");
+        }
+        return searcher;
+    }
+
+    /**
+     * Look each hit up in the graph lazily, as the stream is consumed, in score
+     * order. Hits whose entity has been deleted since it was indexed are skipped.
+     */
+    private Stream<EntityResult> hydrate(List<ElasticSearchSearcher.Hit> hits) {
+        return hits.stream().map(this::hydrate).filter(Objects::nonNull);
+    }
+
+    private EntityResult hydrate(ElasticSearchSearcher.Hit hit) {
+        try {
+            if (hit.isRelationship()) {
+                return new EntityResult(null, db.getRelationshipById(hit.getId()), hit.getScore());
+            }
+            return new EntityResult(db.getNodeById(hit.getId()), null, hit.getScore());
+        } catch (NotFoundException e) {
+            // deleted, the delete has not reached elasticsearch yet
+            return null;
+        }
+    }
+
+    public static class EntityResult {
+
+        public final Node node;
+
+        public final Relationship relationship;
+
+        public final double score;
+
+        public EntityResult(Node node, Relationship relationship, double score) {
+            this.node = node;
+            this.relationship = relationship;
+            this.score = score;
+        }
+    }
+
+    public static class NodeResult {
+
+        public final Node node;
+
+        public final double score;
+
+        public NodeResult(Node node, double score) {
+            this.node = node;
+            this.score = score;
+        }
+    }
+
+    public static class RelationshipResult {
+
+        public final Relationship relationship;
+
+        public final double score;
+
+        public RelationshipResult(Relationship relationship, double score) {
+            this.relationship = relationship;
+            this.score = score;
+        }
+    }
+
+    public static class StatsResult {
+
+        /**
+         * The number of entity writes skipped because none of their indexed
+         * properties changed.
+         */
+        public final long skippedWrites;
+
+        public StatsResult(long skippedWrites) {
+            this.skippedWrites = skippedWrites;
+        }
+    }
+}
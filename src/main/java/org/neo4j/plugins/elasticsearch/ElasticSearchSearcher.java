@@ -0,0 +1,250 @@
+package org.neo4j.plugins.elasticsearch;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ElasticSearchSearcher {
+
+    /**
+     * The maximum number of hits of a single search, the default
+     * {@code index.max_result_window} of elasticsearch.
+     */
+    private static final int MAX_SIZE = 10000;
+
+    /**
+     * The maximum number of cached search results.
+     */
+    private static final int MAX_CACHE_ENTRIES = 1000;
+
+    private final JestClient jestClient;
+
+    private final String indexName;
+
+    private final String typeNode;
+
+    private final String typeRelationship;
+
+    private final long cacheTtlNanos;
+
+    private final Map<String, CachedHits> cache = new ConcurrentHashMap<>();
+
+    private ElasticSearchSearcher(Builder builder) {
+        this.jestClient = builder.jestClient;
+        this.indexName = builder.indexName;
+        this.typeNode = ElasticSearchEventHandler.PREFIX_TYPE_NODE + indexName;
+        this.typeRelationship = ElasticSearchEventHandler.PREFIX_TYPE_RELATIONSHIP + indexName;
+        this.cacheTtlNanos = builder.cacheTtl == null ? 0 : builder.cacheTtl.toNanos();
+    }
+
+    public static class Builder {
+
+        private JestClient jestClient;
+
+        private String indexName;
+
+        private Duration cacheTtl;
+
+        public Builder() {
+        }
+
+        public Builder jestClient(JestClient jestClient) {
+            this.jestClient = jestClient;
+            return this;
+        }
+
+        public Builder indexName(String indexName) {
+            this.indexName = indexName;
+            return this;
+        }
+
+        public Builder cacheTtl(Duration cacheTtl) {
+            this.cacheTtl = cacheTtl;
+            return this;
+        }
+
+        public ElasticSearchSearcher build() {
+            return new ElasticSearchSearcher(this);
+        }
+    }
+
+    /**
+     * Search neo4j nodes.
+     */
+    public List<Hit> searchNodes(String query, long size) throws IOException {
+        return search(query, size, typeNode);
+    }
+
+    /**
+     * Search neo4j relationships.
+     */
+    public List<Hit> searchRelationships(String query, long size) throws IOException {
+        return search(query, size, typeRelationship);
+    }
+
+    /**
+     * Search neo4j nodes and relationships.
+     */
+    public List<Hit> search(String query, long size) throws IOException {
+        return search(query, size, typeNode, typeRelationship);
+    }
+
+    private List<Hit> search(String query, long size, String... types) throws IOException {
+        int limit = (int) Math.max(0, Math.min(size, MAX_SIZE));
+        if (limit == 0) {
+            return Collections.emptyList();
+        }
+
+        String key = null;
+        if (cacheTtlNanos > 0) {
+            key = String.join(",", types) + '\n' + limit + '\n' + query;
+            CachedHits cached = cache.get(key);
+            if (cached != null && cached.expiresAt - System.nanoTime() > 0) {
+                return cached.hits;
+            }
+        }
+
+        Search.Builder builder = new Search.Builder(body(query, limit)).addIndex(indexName);
+        for (String type : types) {
+            builder.addType(type);
+        }
+        SearchResult result = jestClient.execute(builder.build());
+        if (!result.isSucceeded()) {
+            throw new IOException("elasticsearch search failed: " + result.getErrorMessage());
+        }
+        List<Hit> hits = Collections.unmodifiableList(hits(result.getJsonObject()));
+
+        if (key != null) {
+            evictExpired();
+            if (cache.size() < MAX_CACHE_ENTRIES) {
+                cache.put(key, new CachedHits(hits, System.nanoTime() + cacheTtlNanos));
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Build the search request body. A query starting with an opening brace is
+     * taken as elasticsearch query DSL, anything else as {@code query_string} syntax.
+     * Sources are not fetched, since the hits are read back from the graph.
+     *
+     * @throws IllegalArgumentException if the query is missing or is malformed query DSL
+     */
+    private String body(String query, int size) {
+        if (query == null || query.trim().isEmpty()) {
+            throw new IllegalArgumentException("query must not be empty");
+        }
+
+        JsonElement clause;
+        String trimmed = query.trim();
+        if (trimmed.startsWith("{")) {
+            try {
+                clause = new JsonParser().parse(trimmed);
+            } catch (JsonParseException e) {
+                // without the cause, neo4j would report the gson root cause instead of this message
+                throw new IllegalArgumentException("invalid query DSL: " + e.getMessage());
+            }
+            if (!clause.isJsonObject()) {
+                throw new IllegalArgumentException("invalid query DSL: not a JSON object");
+            }
+        } else {
+            JsonObject queryString = new JsonObject();
+            queryString.addProperty("query", query);
+            JsonObject wrapper = new JsonObject();
+            wrapper.add("query_string", queryString);
+            clause = wrapper;
+        }
+
+        JsonObject body = new JsonObject();
+        body.add("query", clause);
+        body.addProperty("size", size);
+        body.addProperty("_source", false);
+        return body.toString();
+    }
+
+    private List<Hit> hits(JsonObject response) {
+        List<Hit> hits = new ArrayList<>();
+        if (response == null || !response.has("hits")) {
+            return hits;
+        }
+        JsonArray array = response.getAsJsonObject("hits").getAsJsonArray("hits");
+        for (JsonElement element : array) {
+            JsonObject hit = element.getAsJsonObject();
+            String type = hit.get("_type").getAsString();
+            boolean relationship = type.equals(typeRelationship);
+            if (!relationship && !type.equals(typeNode)) {
+                continue;
+            }
+            JsonElement score = hit.get("_score");
+            hits.add(new Hit(relationship, Long.parseLong(hit.get("_id").getAsString()),
+                    score == null || score.isJsonNull() ? 0 : score.getAsDouble()));
+        }
+        return hits;
+    }
+
+    private void evictExpired() {
+        long now = System.nanoTime();
+        Iterator<CachedHits> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expiresAt - now <= 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * A search hit, referring to a neo4j node or relationship by id.
+     */
+    public static class Hit {
+
+        private final boolean relationship;
+
+        private final long id;
+
+        private final double score;
+
+        Hit(boolean relationship, long id, double score) {
+            this.relationship = relationship;
+            this.id = id;
+            this.score = score;
+        }
+
+        public boolean isRelationship() {
+            return relationship;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    private static class CachedHits {
+
+        private final List<Hit> hits;
+
+        private final long expiresAt;
+
+        CachedHits(List<Hit> hits, long expiresAt) {
+            this.hits = hits;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
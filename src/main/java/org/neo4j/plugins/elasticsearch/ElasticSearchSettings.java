@@ -3,6 +3,8 @@ package org.neo4j.plugins.elasticsearch;
 import org.neo4j.configuration.Description;
 import org.neo4j.graphdb.config.Setting;
 
+import java.time.Duration;
+
 import static org.neo4j.kernel.configuration.Settings.*;
 
 @Description("settings for neo4j elasticsearch plugin")
@@ -52,4 +54,44 @@ public final class ElasticSearchSettings {
      */
     public static final Setting<Boolean> EXECUTE_ASYNC = setting("neo4j.plugin.elasticsearch.executeAsync", BOOLEAN,
             TRUE);
+
+    /**
+     * The maximum number of actions in a single bulk request, default 1000.
+     */
+    public static final Setting<Integer> BULK_ACTIONS = setting("neo4j.plugin.elasticsearch.bulkActions", INTEGER,
+            "1000");
+
+    /**
+     * The maximum size in bytes of a single bulk request, counting the UTF-8
+     * documents plus an estimated metadata overhead per action, default 5MB.
+     */
+    public static final Setting<Long> BULK_SIZE_IN_BYTES = setting("neo4j.plugin.elasticsearch.bulkSizeInBytes",
+            LONG, "5242880");
+
+    /**
+     * The number of pending changes of a transaction kept in memory before they
+     * are spilled to disk, default 10000.
+     */
+    public static final Setting<Integer> SPILL_THRESHOLD = setting("neo4j.plugin.elasticsearch.spillThreshold",
+            INTEGER, "10000");
+
+    /**
+     * The directory of the files pending changes are spilled to, default the
+     * system temporary directory.
+     */
+    public static final Setting<String> SPILL_DIRECTORY = setting("neo4j.plugin.elasticsearch.spillDirectory",
+            STRING, "");
+
+    /**
+     * How long results of the search procedures are cached, default 0s (disabled).
+     */
+    public static final Setting<Duration> SEARCH_CACHE_TTL = setting("neo4j.plugin.elasticsearch.searchCacheTtl",
+            DURATION, "0s");
+
+    /**
+     * Comma separated property keys that are left out of elasticsearch documents.
+     * Changes of these properties alone do not trigger a transfer.
+     */
+    public static final Setting<String> EXCLUDED_PROPERTIES = setting(
+            "neo4j.plugin.elasticsearch.excludedProperties", STRING, "");
 }
@@ -0,0 +1,131 @@
+package org.neo4j.plugins.elasticsearch;
+
+import java.util.Arrays;
+
+/**
+ * The latest change of every entity of one kind touched by a transaction,
+ * keyed by the primitive entity id.
+ * <p>
+ * Ids and operations are kept in dense arrays in first-touch order, and an
+ * open-addressing table with linear probing maps an id to its position in
+ * those arrays. Recording a change therefore allocates nothing except when
+ * the arrays grow, and a later change of the same entity overwrites the
+ * operation in place, like {@link java.util.LinkedHashMap#put} would.
+ */
+class EntityChangeSet {
+
+    /**
+     * The entity has to be indexed.
+     */
+    static final byte INDEX = 0;
+
+    /**
+     * The entity has to be deleted.
+     */
+    static final byte DELETE = 1;
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] ids;
+
+    private byte[] operations;
+
+    /**
+     * Position in {@link #ids} plus one, zero marks an empty slot.
+     */
+    private int[] table;
+
+    private int size;
+
+    EntityChangeSet() {
+        this.ids = new long[DEFAULT_CAPACITY];
+        this.operations = new byte[DEFAULT_CAPACITY];
+        this.table = new int[DEFAULT_CAPACITY * 2];
+    }
+
+    /**
+     * Record the operation of the given entity, replacing an earlier one.
+     */
+    void put(long id, byte operation) {
+        int mask = table.length - 1;
+        int slot = hash(id) & mask;
+        while (table[slot] != 0) {
+            int index = table[slot] - 1;
+            if (ids[index] == id) {
+                operations[index] = operation;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == ids.length) {
+            grow();
+            put(id, operation);
+            return;
+        }
+
+        ids[size] = id;
+        operations[size] = operation;
+        table[slot] = ++size;
+    }
+
+    /**
+     * Whether a change of the given entity has been recorded.
+     */
+    boolean contains(long id) {
+        int mask = table.length - 1;
+        int slot = hash(id) & mask;
+        while (table[slot] != 0) {
+            if (ids[table[slot] - 1] == id) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the id of the entity at the given position in first-touch order.
+     */
+    long id(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Return the operation of the entity at the given position in first-touch order.
+     */
+    byte operation(int index) {
+        return operations[index];
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        operations = Arrays.copyOf(operations, capacity);
+        // keep the load factor of the table at most one half
+        table = new int[capacity * 2];
+        int mask = table.length - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = hash(ids[index]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = index + 1;
+        }
+    }
+
+    private static int hash(long id) {
+        // murmur3 finalizer, spreads sequential ids over the table
+        long h = id;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,324 @@
+package org.neo4j.plugins.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Delete;
+import io.searchbox.core.DocumentResult;
+import io.searchbox.core.Index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The serialized actions of one transaction, waiting to be transferred to
+ * elasticsearch after commit.
+ * <p>
+ * Actions are kept in memory until {@code spillThreshold} of them are pending,
+ * after which they are appended to a temporary file, so that the heap usage of
+ * a large transaction stays bounded. The file is only readable by the owner,
+ * since it holds full documents. On replay the actions are read back in
+ * their original order and handed out in chunks of at most {@code bulkActions}
+ * actions and at most {@code bulkSizeInBytes} bytes of UTF-8 sources plus an
+ * estimated metadata overhead, unless a single action is larger than that.
+ */
+class PendingBulk implements Closeable {
+
+    /**
+     * Approximate per-action overhead of the bulk metadata line.
+     */
+    private static final int ACTION_OVERHEAD = 100;
+
+    private final String indexName;
+
+    private final int bulkActions;
+
+    private final long bulkSizeInBytes;
+
+    private final int spillThreshold;
+
+    private final File spillDirectory;
+
+    private final List<PendingAction> actions = new ArrayList<>();
+
+    private Path spillFile;
+
+    private DataOutputStream spillOutput;
+
+    private int size;
+
+    /**
+     * @param spillDirectory the directory of the spill file, or null for the
+     *                       system temporary directory
+     */
+    PendingBulk(String indexName, int bulkActions, long bulkSizeInBytes, int spillThreshold, File spillDirectory) {
+        this.indexName = indexName;
+        this.bulkActions = Math.max(1, bulkActions);
+        this.bulkSizeInBytes = Math.max(1L, bulkSizeInBytes);
+        this.spillThreshold = Math.max(1, spillThreshold);
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Append an index action with the given JSON source.
+     */
+    void index(String type, String id, String source) throws IOException {
+        add(new PendingAction(type, id, source));
+    }
+
+    /**
+     * Append a delete action.
+     */
+    void delete(String type, String id) throws IOException {
+        add(new PendingAction(type, id, null));
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    Path spillFile() {
+        return spillFile;
+    }
+
+    /**
+     * Replay all pending actions in order, one size-bounded chunk at a time.
+     */
+    void forEachChunk(ChunkConsumer consumer) throws Exception {
+        Chunker chunker = new Chunker(consumer);
+
+        if (spillFile != null) {
+            spillOutput.close();
+            spillOutput = null;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(spillFile)))) {
+                PendingAction action;
+                while ((action = read(in)) != null) {
+                    chunker.add(action);
+                }
+            }
+        }
+
+        for (PendingAction action : actions) {
+            chunker.add(action);
+        }
+
+        chunker.flush();
+    }
+
+    /**
+     * Release the in-memory actions and delete the spill file, if any.
+     */
+    @Override
+    public void close() {
+        actions.clear();
+        if (spillOutput != null) {
+            try {
+                spillOutput.close();
+            } catch (IOException ignored) {
+                // the file is deleted below anyway
+            }
+            spillOutput = null;
+        }
+        if (spillFile != null) {
+            try {
+                Files.deleteIfExists(spillFile);
+            } catch (IOException e) {
+                spillFile.toFile().deleteOnExit();
+            }
+            spillFile = null;
+        }
+    }
+
+    private void add(PendingAction action) throws IOException {
+        actions.add(action);
+        size++;
+        if (actions.size() >= spillThreshold) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        if (spillOutput == null) {
+            spillFile = createSpillFile();
+            spillOutput = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile)));
+        }
+        for (PendingAction action : actions) {
+            write(spillOutput, action);
+        }
+        actions.clear();
+    }
+
+    private Path createSpillFile() throws IOException {
+        Path directory;
+        if (spillDirectory == null) {
+            directory = Paths.get(System.getProperty("java.io.tmpdir"));
+        } else {
+            directory = Files.createDirectories(spillDirectory.toPath());
+        }
+
+        if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return Files.createTempFile(directory, "neo4j-elasticsearch-", ".bulk",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        Path file = Files.createTempFile(directory, "neo4j-elasticsearch-", ".bulk");
+        File f = file.toFile();
+        f.setReadable(false, false);
+        f.setWritable(false, false);
+        f.setReadable(true, true);
+        f.setWritable(true, true);
+        return file;
+    }
+
+    /**
+     * Return the number of bytes of the UTF-8 encoding of the given string.
+     */
+    static long utf8Length(String value) {
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void write(DataOutputStream out, PendingAction action) throws IOException {
+        out.writeBoolean(action.source == null);
+        writeString(out, action.type);
+        writeString(out, action.id);
+        if (action.source != null) {
+            writeString(out, action.source);
+        }
+    }
+
+    private static PendingAction read(DataInputStream in) throws IOException {
+        boolean delete;
+        try {
+            delete = in.readBoolean();
+        } catch (EOFException e) {
+            return null;
+        }
+        String type = readString(in);
+        String id = readString(in);
+        String source = delete ? null : readString(in);
+        return new PendingAction(type, id, source);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Groups replayed actions into chunks, flushing a chunk before an action
+     * would take it past {@code bulkSizeInBytes}.
+     */
+    private class Chunker {
+
+        private final ChunkConsumer consumer;
+
+        private List<BulkableAction<DocumentResult>> chunk = new ArrayList<>();
+
+        private long chunkBytes;
+
+        Chunker(ChunkConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+        void add(PendingAction action) throws Exception {
+            if (!chunk.isEmpty() && chunkBytes + action.estimatedBytes() > bulkSizeInBytes) {
+                flush();
+            }
+            chunk.add(action.toBulkableAction(indexName));
+            chunkBytes += action.estimatedBytes();
+            if (chunk.size() >= bulkActions) {
+                flush();
+            }
+        }
+
+        void flush() throws Exception {
+            if (!chunk.isEmpty()) {
+                consumer.accept(chunk);
+                chunk = new ArrayList<>();
+                chunkBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Receives the chunks of a {@link PendingBulk} during replay.
+     */
+    interface ChunkConsumer {
+
+        void accept(List<BulkableAction<DocumentResult>> chunk) throws Exception;
+    }
+
+    /**
+     * A single serialized action, an index action if {@code source} is present
+     * and a delete action otherwise.
+     */
+    private static class PendingAction {
+
+        private final String type;
+
+        private final String id;
+
+        private final String source;
+
+        private final long estimatedBytes;
+
+        PendingAction(String type, String id, String source) {
+            this.type = type;
+            this.id = id;
+            this.source = source;
+            this.estimatedBytes = ACTION_OVERHEAD + (source == null ? 0 : utf8Length(source));
+        }
+
+        long estimatedBytes() {
+            return estimatedBytes;
+        }
+
+        BulkableAction<DocumentResult> toBulkableAction(String indexName) {
+            if (source == null) {
+                return new Delete.Builder(id).index(indexName).type(type).build();
+            }
+            return new Index.Builder(source).index(indexName).type(type).id(id).build();
+        }
+    }
+}
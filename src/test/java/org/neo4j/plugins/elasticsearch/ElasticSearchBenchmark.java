@@ -0,0 +1,155 @@
+package org.neo4j.plugins.elasticsearch;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * End-to-end benchmark driving an embedded database against a
+ * {@link FakeElasticSearch}, reporting commit latency percentiles,
+ * elasticsearch-side throughput and commit-to-visible lag.
+ * <p>
+ * Skipped unless run with {@code -Dbenchmark=true}, e.g.
+ * {@code mvn test -Dtest=ElasticSearchBenchmark -Dbenchmark=true -Dbenchmark.transactions=5000}.
+ * <ul>
+ * <li>{@code benchmark.workload}: {@code create} new nodes or {@code update} existing ones, default create</li>
+ * <li>{@code benchmark.transactions}: number of write transactions, default 1000</li>
+ * <li>{@code benchmark.nodesPerTransaction}: nodes written per transaction, default 10</li>
+ * <li>{@code benchmark.properties}: properties written per node, default 5</li>
+ * <li>{@code benchmark.executeAsync}: transfer asynchronously, default true</li>
+ * <li>{@code benchmark.latencyMillis}: injected elasticsearch latency, default 0</li>
+ * <li>{@code benchmark.bulkActions}: maximum actions per bulk request, default 1000</li>
+ * </ul>
+ */
+public class ElasticSearchBenchmark {
+
+    private static final String INDEX_NAME = "index_benchmark";
+
+    private static final Label LABEL = Label.label("Benchmark");
+
+    /**
+     * The node property holding the number of the transaction that wrote it last.
+     */
+    private static final String TRANSACTION = "tx";
+
+    @Test
+    public void benchmark() throws Throwable {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+
+        String workload = System.getProperty("benchmark.workload", "create");
+        int transactions = Integer.getInteger("benchmark.transactions", 1000);
+        int nodesPerTransaction = Integer.getInteger("benchmark.nodesPerTransaction", 10);
+        int properties = Integer.getInteger("benchmark.properties", 5);
+        boolean executeAsync = Boolean.parseBoolean(System.getProperty("benchmark.executeAsync", "true"));
+        long latencyMillis = Long.getLong("benchmark.latencyMillis", 0L);
+        int bulkActions = Integer.getInteger("benchmark.bulkActions", 1000);
+
+        try (FakeElasticSearch elasticSearch = FakeElasticSearch.start()) {
+            GraphDatabaseService db = elasticSearch.newDatabaseBuilder(INDEX_NAME)
+                    .setConfig(ElasticSearchSettings.SYNC_NODES, "true")
+                    .setConfig(ElasticSearchSettings.SYNC_RELATIONSHIPS, "false")
+                    .setConfig(ElasticSearchSettings.EXECUTE_ASYNC, String.valueOf(executeAsync))
+                    .setConfig(ElasticSearchSettings.BULK_ACTIONS, String.valueOf(bulkActions))
+                    .newGraphDatabase();
+            long[] nodeIds = new long[nodesPerTransaction];
+            if (workload.equals("update")) {
+                // nodes to update, their initial transfer is not measured
+                try (Transaction tx = db.beginTx()) {
+                    for (int i = 0; i < nodesPerTransaction; i++) {
+                        nodeIds[i] = db.createNode(LABEL).getId();
+                    }
+                    tx.success();
+                }
+            }
+            int setupWrites = workload.equals("update") ? nodesPerTransaction : 0;
+            while (elasticSearch.journal().size() < setupWrites) {
+                Thread.sleep(10);
+            }
+            elasticSearch.latency(latencyMillis, TimeUnit.MILLISECONDS);
+
+            long[] commitStart = new long[transactions];
+            long[] commitLatency = new long[transactions];
+            long start = System.nanoTime();
+            for (int t = 0; t < transactions; t++) {
+                Transaction tx = db.beginTx();
+                for (int i = 0; i < nodesPerTransaction; i++) {
+                    Node node = workload.equals("update") ? db.getNodeById(nodeIds[i]) : db.createNode(LABEL);
+                    node.setProperty(TRANSACTION, t);
+                    for (int p = 0; p < properties; p++) {
+                        node.setProperty("p" + p, "value-" + t + "-" + p);
+                    }
+                }
+                tx.success();
+                commitStart[t] = System.nanoTime();
+                tx.close();
+                commitLatency[t] = System.nanoTime() - commitStart[t];
+            }
+            long writeEnd = System.nanoTime();
+
+            // wait until the last transaction is visible in elasticsearch
+            long expectedWrites = (long) transactions * nodesPerTransaction;
+            long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+            List<FakeElasticSearch.Operation> journal = measured(elasticSearch, setupWrites);
+            while (journal.size() < expectedWrites && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+                journal = measured(elasticSearch, setupWrites);
+            }
+
+            JsonParser parser = new JsonParser();
+            long[] visibleLag = new long[transactions];
+            long lastVisible = start;
+            for (FakeElasticSearch.Operation operation : journal) {
+                if (operation.getSource() == null) {
+                    continue;
+                }
+                JsonObject source = parser.parse(operation.getSource()).getAsJsonObject();
+                int t = source.getAsJsonObject("properties").get(TRANSACTION).getAsInt();
+                visibleLag[t] = Math.max(visibleLag[t], operation.getNanoTime() - commitStart[t]);
+                lastVisible = Math.max(lastVisible, operation.getNanoTime());
+            }
+
+            System.out.println(String.format("workload=%s transactions=%d nodesPerTransaction=%d properties=%d "
+                            + "executeAsync=%s latencyMillis=%d bulkActions=%d", workload, transactions,
+                    nodesPerTransaction, properties, executeAsync, latencyMillis, bulkActions));
+            System.out.println(String.format("writes: %d/%d visible, %d bulk requests, %.1f tx/s",
+                    journal.size(), expectedWrites, elasticSearch.bulkRequests(),
+                    transactions / seconds(writeEnd - start)));
+            System.out.println(String.format("elasticsearch: %.1f docs/s", journal.size() / seconds(lastVisible - start)));
+            System.out.println("commit latency: " + percentiles(commitLatency));
+            System.out.println("commit-to-visible lag: " + percentiles(visibleLag));
+
+            db.shutdown();
+        }
+    }
+
+    private static List<FakeElasticSearch.Operation> measured(FakeElasticSearch elasticSearch, int setupWrites) {
+        List<FakeElasticSearch.Operation> journal = elasticSearch.journal();
+        return journal.subList(Math.min(setupWrites, journal.size()), journal.size());
+    }
+
+    private static double seconds(long nanos) {
+        return Math.max(nanos, 1L) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms", millis(sorted, 0.50),
+                millis(sorted, 0.95), millis(sorted, 0.99), millis(sorted, 1.0));
+    }
+
+    private static double millis(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1_000_000.0;
+    }
+}
@@ -0,0 +1,275 @@
+package org.neo4j.plugins.elasticsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchEventHandlerTest {
+
+    private static final String INDEX_NAME = "index_test";
+
+    private static final String TYPE_NODE = "type_node_" + INDEX_NAME;
+
+    private FakeElasticSearch elasticSearch;
+
+    private GraphDatabaseService db;
+
+    private ElasticSearchExtension extension;
+
+    @Before
+    public void setUp() throws Throwable {
+        elasticSearch = FakeElasticSearch.start();
+        db = database(false);
+        extension = FakeElasticSearch.extension(db);
+    }
+
+    private GraphDatabaseService database(boolean executeAsync) {
+        return elasticSearch.newDatabaseBuilder(INDEX_NAME)
+                .setConfig(ElasticSearchSettings.SYNC_NODES, "true")
+                .setConfig(ElasticSearchSettings.SYNC_RELATIONSHIPS, "false")
+                .setConfig(ElasticSearchSettings.EXECUTE_ASYNC, String.valueOf(executeAsync))
+                .setConfig(ElasticSearchSettings.BULK_ACTIONS, "10")
+                .setConfig(ElasticSearchSettings.SPILL_THRESHOLD, "25")
+                .setConfig(ElasticSearchSettings.EXCLUDED_PROPERTIES, "secret, internal")
+                .newGraphDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        if (db != null) {
+            db.shutdown();
+        }
+        if (elasticSearch != null) {
+            elasticSearch.close();
+        }
+    }
+
+    @Test
+    public void testCreateIndex() {
+        assertTrue(elasticSearch.existsIndex(INDEX_NAME));
+    }
+
+    @Test
+    public void testIndexAndDeleteNode() {
+        long id;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Person"));
+            node.setProperty("name", "neo");
+            id = node.getId();
+            tx.success();
+        }
+
+        String source = elasticSearch.document(INDEX_NAME, TYPE_NODE, String.valueOf(id));
+        assertNotNull(source);
+        assertTrue(source.contains("\"name\":\"neo\""));
+        assertTrue(source.contains("\"Person\""));
+
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(id).delete();
+            tx.success();
+        }
+
+        assertNull(elasticSearch.document(INDEX_NAME, TYPE_NODE, String.valueOf(id)));
+    }
+
+    @Test
+    public void testLargeTransactionIsChunked() {
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 95; i++) {
+                db.createNode(Label.label("Person")).setProperty("seq", i);
+            }
+            tx.success();
+        }
+
+        assertEquals(95, elasticSearch.documentCount(INDEX_NAME));
+        assertEquals(10, elasticSearch.bulkRequests());
+    }
+
+    @Test
+    public void testSpilledTransactionSendsEachNodeOnce() {
+        // more nodes than the spill threshold, each one created, labelled and with a property
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 40; i++) {
+                Node node = db.createNode();
+                node.addLabel(Label.label("Person"));
+                node.setProperty("seq", i);
+            }
+            tx.success();
+        }
+
+        Set<String> ids = new HashSet<>();
+        for (FakeElasticSearch.Operation operation : elasticSearch.journal()) {
+            assertEquals("index", operation.getOperation());
+            assertTrue("sent twice: " + operation.getId(), ids.add(operation.getId()));
+        }
+        assertEquals(40, ids.size());
+        assertEquals(40, elasticSearch.documentCount(INDEX_NAME));
+    }
+
+    @Test
+    public void testUnchangedPropertiesAreSkipped() {
+        long id;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Person"));
+            node.setProperty("name", "neo");
+            node.setProperty("aliases", new String[]{"the one"});
+            node.setProperty("secret", "red pill");
+            id = node.getId();
+            tx.success();
+        }
+        String source = elasticSearch.document(INDEX_NAME, TYPE_NODE, String.valueOf(id));
+        assertTrue(source.contains("\"name\":\"neo\""));
+        assertFalse(source.contains("secret"));
+        long bulkRequests = elasticSearch.bulkRequests();
+
+        // values changed and changed back within the transaction
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.getNodeById(id);
+            node.setProperty("name", "thomas");
+            node.setProperty("name", "neo");
+            node.setProperty("aliases", new String[]{"mr anderson"});
+            node.setProperty("aliases", new String[]{"the one"});
+            tx.success();
+        }
+        assertEquals(bulkRequests, elasticSearch.bulkRequests());
+        assertEquals(1, extension.getSkippedWrites());
+
+        // excluded properties
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.getNodeById(id);
+            node.setProperty("secret", "blue pill");
+            node.setProperty("internal", 42);
+            tx.success();
+        }
+        assertEquals(bulkRequests, elasticSearch.bulkRequests());
+        assertEquals(2, extension.getSkippedWrites());
+
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(id).removeProperty("internal");
+            tx.success();
+        }
+        assertEquals(bulkRequests, elasticSearch.bulkRequests());
+        assertEquals(3, extension.getSkippedWrites());
+
+        // changed value
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(id).setProperty("name", "thomas");
+            tx.success();
+        }
+        assertEquals(bulkRequests + 1, elasticSearch.bulkRequests());
+        assertTrue(elasticSearch.document(INDEX_NAME, TYPE_NODE, String.valueOf(id)).contains("thomas"));
+        assertEquals(3, extension.getSkippedWrites());
+    }
+
+    @Test
+    public void testRemovedPropertyIsReindexed() {
+        long id;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Person"));
+            node.setProperty("name", "neo");
+            node.setProperty("nickname", "the one");
+            id = node.getId();
+            tx.success();
+        }
+        assertTrue(elasticSearch.document(INDEX_NAME, TYPE_NODE, String.valueOf(id)).contains("the one"));
+        long bulkRequests = elasticSearch.bulkRequests();
+
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(id).removeProperty("nickname");
+            tx.success();
+        }
+
+        assertEquals(bulkRequests + 1, elasticSearch.bulkRequests());
+        String source = elasticSearch.document(INDEX_NAME, TYPE_NODE, String.valueOf(id));
+        assertTrue(source.contains("\"name\":\"neo\""));
+        assertFalse(source.contains("nickname"));
+        assertEquals(0, extension.getSkippedWrites());
+    }
+
+    @Test
+    public void testConcurrentAsyncCommitsDoNotWaitForElasticSearch() throws Throwable {
+        GraphDatabaseService asyncDb = database(true);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            elasticSearch.latency(1, TimeUnit.SECONDS);
+
+            List<Future<Long>> commits = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                commits.add(executor.submit(() -> {
+                    long start = System.nanoTime();
+                    try (Transaction tx = asyncDb.beginTx()) {
+                        asyncDb.createNode(Label.label("Person"));
+                        tx.success();
+                    }
+                    return System.nanoTime() - start;
+                }));
+            }
+            for (Future<Long> commit : commits) {
+                assertTrue("commit waited for elasticsearch",
+                        commit.get() < TimeUnit.MILLISECONDS.toNanos(500));
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (elasticSearch.documentCount(INDEX_NAME) < 8 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(8, elasticSearch.documentCount(INDEX_NAME));
+        } finally {
+            executor.shutdownNow();
+            elasticSearch.latency(0, TimeUnit.MILLISECONDS);
+            asyncDb.shutdown();
+        }
+    }
+
+    @Test
+    public void testRejectedBulkDoesNotFailCommit() {
+        elasticSearch.rejectNextBulks(1);
+        long rejected;
+        try (Transaction tx = db.beginTx()) {
+            rejected = db.createNode(Label.label("Person")).getId();
+            tx.success();
+        }
+        assertEquals(1, elasticSearch.rejectedBulkRequests());
+        assertNull(elasticSearch.document(INDEX_NAME, TYPE_NODE, String.valueOf(rejected)));
+
+        long accepted;
+        try (Transaction tx = db.beginTx()) {
+            assertNotNull(db.getNodeById(rejected));
+            accepted = db.createNode(Label.label("Person")).getId();
+            tx.success();
+        }
+        assertEquals(1, elasticSearch.rejectedBulkRequests());
+        assertNotNull(elasticSearch.document(INDEX_NAME, TYPE_NODE, String.valueOf(accepted)));
+    }
+
+    @Test
+    public void testCommitSucceedsWhileElasticSearchIsDown() {
+        elasticSearch.down(true);
+        long id;
+        try (Transaction tx = db.beginTx()) {
+            id = db.createNode(Label.label("Person")).getId();
+            tx.success();
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            assertNotNull(db.getNodeById(id));
+            tx.success();
+        }
+        assertEquals(0, elasticSearch.documentCount(INDEX_NAME));
+    }
+}
@@ -4,22 +4,31 @@ import org.junit.Test;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
+import static org.junit.Assert.assertTrue;
+
 public class ElasticSearchExtensionTest {
 
     @Test
     public void testInit() throws Throwable {
-        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
-        ElasticSearchExtension extension = new ElasticSearchExtension.Builder()
-                .graphDatabaseService(db)
-                .host("http://localhost:9200")
-                .indexName("index_test")
-                .numberOfShards(3)
-                .numberOfReplicas(0)
-                .discovery(false)
-                .syncNodes(true)
-                .syncRelationships(false)
-                .executeAsync(true)
-                .build();
-        extension.init();
+        try (FakeElasticSearch elasticSearch = FakeElasticSearch.start()) {
+            // the auto-loaded extension stays disabled without a configured host
+            GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+            ElasticSearchExtension extension = new ElasticSearchExtension.Builder()
+                    .graphDatabaseService(db)
+                    .host(elasticSearch.getHost())
+                    .indexName("index_test")
+                    .numberOfShards(3)
+                    .numberOfReplicas(0)
+                    .discovery(false)
+                    .syncNodes(true)
+                    .syncRelationships(false)
+                    .executeAsync(true)
+                    .build();
+            extension.init();
+            assertTrue(elasticSearch.existsIndex("index_test"));
+
+            extension.shutdown();
+            db.shutdown();
+        }
     }
 }
@@ -0,0 +1,250 @@
+package org.neo4j.plugins.elasticsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.QueryExecutionException;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ElasticSearchProceduresTest {
+
+    private FakeElasticSearch elasticSearch;
+
+    private GraphDatabaseService db;
+
+    private ElasticSearchExtension extension;
+
+    @Before
+    public void setUp() throws Throwable {
+        elasticSearch = FakeElasticSearch.start();
+        db = database("index_test");
+        extension = FakeElasticSearch.extension(db);
+
+        try (Transaction tx = db.beginTx()) {
+            Node neo = db.createNode(Label.label("Person"));
+            neo.setProperty("name", "neo");
+            Node trinity = db.createNode(Label.label("Person"));
+            trinity.setProperty("name", "trinity");
+            Node morpheus = db.createNode(Label.label("Person"));
+            morpheus.setProperty("name", "morpheus");
+            neo.createRelationshipTo(trinity, RelationshipType.withName("KNOWS")).setProperty("since", "matrix");
+            tx.success();
+        }
+    }
+
+    private GraphDatabaseService database(String indexName) throws Exception {
+        return FakeElasticSearch.registerProcedures(elasticSearch.newDatabaseBuilder(indexName)
+                .setConfig(ElasticSearchSettings.SYNC_NODES, "true")
+                .setConfig(ElasticSearchSettings.SYNC_RELATIONSHIPS, "true")
+                .setConfig(ElasticSearchSettings.EXECUTE_ASYNC, "false")
+                .setConfig(ElasticSearchSettings.SEARCH_CACHE_TTL, "1m")
+                .newGraphDatabase());
+    }
+
+    @After
+    public void tearDown() {
+        if (db != null) {
+            db.shutdown();
+        }
+        if (elasticSearch != null) {
+            elasticSearch.close();
+        }
+    }
+
+    @Test
+    public void testSearchNodes() {
+        Set<Object> names = new HashSet<>();
+        try (Transaction tx = db.beginTx();
+             Result result = db.execute("CALL es.searchNodes('name:neo', 10) YIELD node, score "
+                     + "RETURN node.name AS name, score")) {
+            while (result.hasNext()) {
+                Map<String, Object> row = result.next();
+                names.add(row.get("name"));
+                assertEquals(1.0, (Double) row.get("score"), 0.0);
+            }
+            tx.success();
+        }
+
+        assertEquals(1, names.size());
+        assertTrue(names.contains("neo"));
+    }
+
+    @Test
+    public void testSearchComposesWithCypher() {
+        try (Transaction tx = db.beginTx();
+             Result result = db.execute("CALL es.searchNodes('neo') YIELD node "
+                     + "MATCH (node)-[:KNOWS]->(friend) RETURN friend.name AS name")) {
+            assertEquals("trinity", result.next().get("name"));
+            assertFalse(result.hasNext());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void testSearchRelationships() {
+        try (Transaction tx = db.beginTx();
+             Result result = db.execute("CALL es.searchRelationships('matrix') YIELD relationship "
+                     + "RETURN type(relationship) AS type")) {
+            assertEquals("KNOWS", result.next().get("type"));
+            assertFalse(result.hasNext());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void testSearchIsCached() {
+        for (int i = 0; i < 3; i++) {
+            try (Transaction tx = db.beginTx();
+                 Result result = db.execute("CALL es.search('trinity', 5)")) {
+                assertTrue(result.hasNext());
+                tx.success();
+            }
+        }
+
+        assertEquals(1, elasticSearch.searchRequests());
+    }
+
+    @Test
+    public void testSearchUsesTheExtensionOfItsDatabase() throws Throwable {
+        GraphDatabaseService otherDb = database("index_other");
+        try {
+            try (Transaction tx = otherDb.beginTx()) {
+                otherDb.createNode(Label.label("Person")).setProperty("name", "smith");
+                tx.success();
+            }
+
+            try (Transaction tx = otherDb.beginTx();
+                 Result result = otherDb.execute("CALL es.searchNodes('neo') YIELD node RETURN node")) {
+                assertFalse(result.hasNext());
+                tx.success();
+            }
+            try (Transaction tx = otherDb.beginTx();
+                 Result result = otherDb.execute("CALL es.searchNodes('smith') YIELD node RETURN node.name AS name")) {
+                assertEquals("smith", result.next().get("name"));
+                tx.success();
+            }
+        } finally {
+            otherDb.shutdown();
+        }
+    }
+
+    @Test
+    public void testIndexNameMayBeAnAlias() throws Exception {
+        assertEquals(200, request("PUT", "/index_v1", "{}"));
+        assertEquals(200, request("PUT", "/index_v1/_alias/index_alias", null));
+        assertEquals(200, request("GET", "/_alias/index_alias", null));
+
+        GraphDatabaseService aliasDb = database("index_alias");
+        try {
+            // the alias counts as an existing index, writes go through it
+            assertFalse(elasticSearch.existsIndex("index_alias"));
+            long id;
+            try (Transaction tx = aliasDb.beginTx()) {
+                id = aliasDb.createNode(Label.label("Person")).getId();
+                aliasDb.getNodeById(id).setProperty("name", "smith");
+                tx.success();
+            }
+            assertNotNull(elasticSearch.document("index_v1", "type_node_index_alias", String.valueOf(id)));
+
+            try (Transaction tx = aliasDb.beginTx();
+                 Result result = aliasDb.execute("CALL es.searchNodes('smith') YIELD node RETURN id(node) AS id")) {
+                assertEquals(id, result.next().get("id"));
+                tx.success();
+            }
+        } finally {
+            aliasDb.shutdown();
+        }
+
+        assertEquals(200, request("POST", "/_aliases",
+                "{\"actions\":[{\"remove\":{\"index\":\"index_v1\",\"alias\":\"index_alias\"}}]}"));
+        assertEquals(404, request("GET", "/_alias/index_alias", null));
+    }
+
+    @Test(expected = QueryExecutionException.class)
+    public void testSearchFailsWhenTheExtensionIsShutDown() throws Throwable {
+        extension.shutdown();
+        try (Transaction tx = db.beginTx();
+             Result result = db.execute("CALL es.search('neo')")) {
+            result.hasNext();
+            tx.success();
+        } finally {
+            extension.init();
+        }
+    }
+
+    @Test
+    public void testStatsReportSkippedWrites() {
+        // names changed and changed back within the transaction
+        long bulkRequests = elasticSearch.bulkRequests();
+        try (Transaction tx = db.beginTx()) {
+            for (Node node : db.getAllNodes()) {
+                Object name = node.getProperty("name");
+                node.setProperty("name", "smith");
+                node.setProperty("name", name);
+            }
+            tx.success();
+        }
+        assertEquals(bulkRequests, elasticSearch.bulkRequests());
+
+        try (Transaction tx = db.beginTx();
+             Result result = db.execute("CALL es.stats() YIELD skippedWrites RETURN skippedWrites")) {
+            assertEquals(3L, result.next().get("skippedWrites"));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void testInvalidQueriesAreRejected() {
+        assertQueryFails("CALL es.search('{\"match\": ')", "invalid query DSL");
+        assertQueryFails("CALL es.search('{} {}')", "invalid query DSL");
+        assertQueryFails("CALL es.search(null)", "query must not be empty");
+        assertEquals(0, elasticSearch.searchRequests());
+    }
+
+    /**
+     * Send a request to the fake elasticsearch like an administrator would,
+     * returning the response status.
+     */
+    private int request(String method, String path, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(elasticSearch.getHost() + path).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void assertQueryFails(String query, String message) {
+        try (Transaction tx = db.beginTx();
+             Result result = db.execute(query)) {
+            result.hasNext();
+            fail("expected " + query + " to fail");
+        } catch (QueryExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
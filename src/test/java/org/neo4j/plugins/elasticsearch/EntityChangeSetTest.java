@@ -0,0 +1,45 @@
+package org.neo4j.plugins.elasticsearch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.neo4j.plugins.elasticsearch.EntityChangeSet.DELETE;
+import static org.neo4j.plugins.elasticsearch.EntityChangeSet.INDEX;
+
+public class EntityChangeSetTest {
+
+    @Test
+    public void testLatestOperationWinsInFirstTouchOrder() {
+        EntityChangeSet changes = new EntityChangeSet();
+        changes.put(7, INDEX);
+        changes.put(3, INDEX);
+        changes.put(7, DELETE);
+        changes.put(5, DELETE);
+        changes.put(3, INDEX);
+
+        assertEquals(3, changes.size());
+        assertEquals(7, changes.id(0));
+        assertEquals(DELETE, changes.operation(0));
+        assertEquals(3, changes.id(1));
+        assertEquals(INDEX, changes.operation(1));
+        assertEquals(5, changes.id(2));
+        assertEquals(DELETE, changes.operation(2));
+    }
+
+    @Test
+    public void testGrow() {
+        EntityChangeSet changes = new EntityChangeSet();
+        for (long id = 0; id < 10000; id++) {
+            changes.put(id * 1024, INDEX);
+        }
+        for (long id = 0; id < 10000; id += 2) {
+            changes.put(id * 1024, DELETE);
+        }
+
+        assertEquals(10000, changes.size());
+        for (int i = 0; i < changes.size(); i++) {
+            assertEquals(i * 1024L, changes.id(i));
+            assertEquals(i % 2 == 0 ? DELETE : INDEX, changes.operation(i));
+        }
+    }
+}
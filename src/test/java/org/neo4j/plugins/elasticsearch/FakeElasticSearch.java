@@ -0,0 +1,544 @@
+package org.neo4j.plugins.elasticsearch;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.neo4j.kernel.impl.proc.Procedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for an elasticsearch node, good enough for the
+ * requests this plugin sends: index exists/create/delete, aliases,
+ * {@code _bulk} and a naive {@code _search}. Latency, {@code 429 Too Many Requests} responses and
+ * outages can be injected to exercise batching, retry and backpressure
+ * without a live cluster.
+ */
+public class FakeElasticSearch implements Closeable {
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final Set<String> indices = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Alias name to the indices it points to.
+     */
+    private final Map<String, Set<String>> aliases = new ConcurrentHashMap<>();
+
+    /**
+     * Document key ({@code index/type/id}) to its JSON source.
+     */
+    private final Map<String, String> documents = new ConcurrentHashMap<>();
+
+    private final Queue<Operation> journal = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger rejectNextBulks = new AtomicInteger();
+
+    private final AtomicLong bulkRequests = new AtomicLong();
+
+    private final AtomicLong rejectedBulkRequests = new AtomicLong();
+
+    private final AtomicLong searchRequests = new AtomicLong();
+
+    private volatile long latencyMillis;
+
+    private volatile boolean down;
+
+    private FakeElasticSearch(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Start a fake node on a free port of the loopback interface.
+     */
+    public static FakeElasticSearch start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        FakeElasticSearch elasticSearch = new FakeElasticSearch(server, executor);
+        server.createContext("/", elasticSearch::handle);
+        server.setExecutor(executor);
+        server.start();
+        return elasticSearch;
+    }
+
+    /**
+     * Return the host to configure the plugin with.
+     */
+    public String getHost() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Return a builder of an impermanent database whose auto-loaded plugin
+     * transfers to this node under the given index name. The search
+     * procedures are allowed but have to be registered, see {@link #registerProcedures}.
+     */
+    public GraphDatabaseBuilder newDatabaseBuilder(String indexName) {
+        return new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder()
+                .setConfig(ElasticSearchSettings.HOST, getHost())
+                .setConfig(ElasticSearchSettings.INDEX_NAME, indexName)
+                .setConfig(ElasticSearchSettings.NUMBER_OF_SHARDS, "1")
+                .setConfig(ElasticSearchSettings.NUMBER_OF_REPLICAS, "0")
+                .setConfig(GraphDatabaseSettings.procedure_unrestricted, "es.*");
+    }
+
+    /**
+     * Register the plugin procedures, which neo4j loads from the plugins
+     * directory only.
+     */
+    public static GraphDatabaseService registerProcedures(GraphDatabaseService db) throws Exception {
+        ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class)
+                .registerProcedure(ElasticSearchProcedures.class);
+        return db;
+    }
+
+    /**
+     * Return the plugin extension the database has loaded.
+     */
+    public static ElasticSearchExtension extension(GraphDatabaseService db) {
+        return ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(ElasticSearchExtension.class);
+    }
+
+    /**
+     * Delay every response by the given amount of time.
+     */
+    public FakeElasticSearch latency(long latency, TimeUnit unit) {
+        this.latencyMillis = unit.toMillis(latency);
+        return this;
+    }
+
+    /**
+     * Answer the next {@code count} bulk requests with {@code 429 Too Many Requests}.
+     */
+    public FakeElasticSearch rejectNextBulks(int count) {
+        rejectNextBulks.set(count);
+        return this;
+    }
+
+    /**
+     * Answer every request with {@code 503 Service Unavailable} while down.
+     */
+    public FakeElasticSearch down(boolean down) {
+        this.down = down;
+        return this;
+    }
+
+    public boolean existsIndex(String index) {
+        return indices.contains(index);
+    }
+
+    /**
+     * Return the JSON source of a document, or null if it does not exist.
+     */
+    public String document(String index, String type, String id) {
+        return documents.get(key(index, type, id));
+    }
+
+    /**
+     * Return the number of documents stored in the given index.
+     */
+    public int documentCount(String index) {
+        String prefix = index + "/";
+        int count = 0;
+        for (String key : documents.keySet()) {
+            if (key.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long bulkRequests() {
+        return bulkRequests.get();
+    }
+
+    public long rejectedBulkRequests() {
+        return rejectedBulkRequests.get();
+    }
+
+    public long searchRequests() {
+        return searchRequests.get();
+    }
+
+    /**
+     * Return all accepted write operations in arrival order.
+     */
+    public List<Operation> journal() {
+        return new ArrayList<>(journal);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (down) {
+                respond(exchange, 503, error("service_unavailable", "fake elasticsearch is down"));
+                return;
+            }
+
+            String method = exchange.getRequestMethod();
+            String body = read(exchange.getRequestBody());
+            List<String> path = new ArrayList<>();
+            for (String segment : exchange.getRequestURI().getPath().split("/")) {
+                if (!segment.isEmpty()) {
+                    path.add(segment);
+                }
+            }
+
+            if (!path.isEmpty() && path.get(path.size() - 1).equals("_bulk")) {
+                bulk(exchange, path.size() > 1 ? path.get(0) : null, body);
+            } else if (path.size() >= 2 && path.get(path.size() - 1).equals("_search")) {
+                search(exchange, path.get(0), path.size() == 3 ? path.get(1) : null, body);
+            } else if (path.size() == 1 && path.get(0).equals("_aliases")) {
+                updateAliases(exchange, body);
+            } else if (path.size() == 2 && path.get(0).equals("_alias")) {
+                getAlias(exchange, path.get(1));
+            } else if (path.size() == 3 && path.get(1).equals("_alias")) {
+                putAlias(exchange, path.get(0), path.get(2));
+            } else if (path.size() == 1) {
+                index(exchange, method, path.get(0));
+            } else {
+                respond(exchange, 400, error("invalid_request", "unsupported request " + exchange.getRequestURI()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            respond(exchange, 500, error("exception", String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void index(HttpExchange exchange, String method, String index) throws IOException {
+        switch (method) {
+            case "HEAD":
+            case "GET":
+                boolean exists = indices.contains(index) || aliases.containsKey(index);
+                respond(exchange, exists ? 200 : 404, exists ? "{}" : error("index_not_found_exception", index));
+                break;
+            case "PUT":
+                if (indices.add(index)) {
+                    respond(exchange, 200, "{\"acknowledged\":true,\"index\":\"" + index + "\"}");
+                } else {
+                    respond(exchange, 400, error("resource_already_exists_exception", index));
+                }
+                break;
+            case "DELETE":
+                if (indices.remove(index)) {
+                    documents.keySet().removeIf(key -> key.startsWith(index + "/"));
+                    respond(exchange, 200, "{\"acknowledged\":true}");
+                } else {
+                    respond(exchange, 404, error("index_not_found_exception", index));
+                }
+                break;
+            default:
+                respond(exchange, 405, error("method_not_allowed", method));
+        }
+    }
+
+    private void putAlias(HttpExchange exchange, String index, String alias) throws IOException {
+        if (!indices.contains(index)) {
+            respond(exchange, 404, error("index_not_found_exception", index));
+            return;
+        }
+        aliases.computeIfAbsent(alias, name -> ConcurrentHashMap.newKeySet()).add(index);
+        respond(exchange, 200, "{\"acknowledged\":true}");
+    }
+
+    private void getAlias(HttpExchange exchange, String alias) throws IOException {
+        Set<String> targets = aliases.get(alias);
+        if (targets == null || targets.isEmpty()) {
+            respond(exchange, 404, error("aliases_not_found_exception", alias));
+            return;
+        }
+        JsonObject response = new JsonObject();
+        for (String index : targets) {
+            JsonObject names = new JsonObject();
+            names.add(alias, new JsonObject());
+            JsonObject entry = new JsonObject();
+            entry.add("aliases", names);
+            response.add(index, entry);
+        }
+        respond(exchange, 200, response.toString());
+    }
+
+    private void updateAliases(HttpExchange exchange, String body) throws IOException {
+        JsonArray actions = new JsonParser().parse(body).getAsJsonObject().getAsJsonArray("actions");
+        for (JsonElement element : actions) {
+            JsonObject action = element.getAsJsonObject();
+            if (action.has("add")) {
+                JsonObject add = action.getAsJsonObject("add");
+                aliases.computeIfAbsent(add.get("alias").getAsString(), name -> ConcurrentHashMap.newKeySet())
+                        .add(add.get("index").getAsString());
+            } else if (action.has("remove")) {
+                JsonObject remove = action.getAsJsonObject("remove");
+                Set<String> targets = aliases.get(remove.get("alias").getAsString());
+                if (targets != null) {
+                    targets.remove(remove.get("index").getAsString());
+                }
+            }
+        }
+        respond(exchange, 200, "{\"acknowledged\":true}");
+    }
+
+    private void bulk(HttpExchange exchange, String defaultIndex, String body) throws IOException {
+        bulkRequests.incrementAndGet();
+        if (rejectNextBulks.getAndUpdate(count -> count > 0 ? count - 1 : 0) > 0) {
+            rejectedBulkRequests.incrementAndGet();
+            respond(exchange, 429, error("es_rejected_execution_exception", "rejected execution of bulk"));
+            return;
+        }
+
+        long start = System.nanoTime();
+        JsonParser parser = new JsonParser();
+        JsonArray items = new JsonArray();
+        String[] lines = body.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].trim().isEmpty()) {
+                continue;
+            }
+            Map.Entry<String, JsonElement> action = parser.parse(lines[i]).getAsJsonObject().entrySet().iterator()
+                    .next();
+            String operation = action.getKey();
+            JsonObject metadata = action.getValue().getAsJsonObject();
+            String index = writeIndex(metadata.has("_index") ? metadata.get("_index").getAsString() : defaultIndex);
+            String type = metadata.has("_type") ? metadata.get("_type").getAsString() : "_doc";
+            String id = metadata.has("_id") ? metadata.get("_id").getAsString() : UUID.randomUUID().toString();
+            String key = key(index, type, id);
+
+            int status;
+            if (operation.equals("delete")) {
+                status = documents.remove(key) != null ? 200 : 404;
+                journal.add(new Operation(operation, index, type, id, null, System.nanoTime()));
+            } else {
+                String source = lines[++i];
+                status = documents.put(key, source) != null ? 200 : 201;
+                indices.add(index);
+                journal.add(new Operation(operation, index, type, id, source, System.nanoTime()));
+            }
+
+            JsonObject result = new JsonObject();
+            result.addProperty("_index", index);
+            result.addProperty("_type", type);
+            result.addProperty("_id", id);
+            result.addProperty("status", status);
+            JsonObject item = new JsonObject();
+            item.add(operation, result);
+            items.add(item);
+        }
+
+        JsonObject response = new JsonObject();
+        response.addProperty("took", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        response.addProperty("errors", false);
+        response.add("items", items);
+        respond(exchange, 200, response.toString());
+    }
+
+    /**
+     * Resolve an alias pointing to a single index to that index, like
+     * elasticsearch does for writes.
+     */
+    private String writeIndex(String index) {
+        Set<String> targets = aliases.get(index);
+        if (targets != null && targets.size() == 1) {
+            return targets.iterator().next();
+        }
+        return index;
+    }
+
+    /**
+     * Search supporting {@code match_all} and a {@code query_string} whose terms,
+     * stripped of field prefixes and wildcards, must all occur in the source.
+     * Every hit scores 1.0 and hits are ordered by key.
+     */
+    private void search(HttpExchange exchange, String index, String types, String body) throws IOException {
+        Set<String> targets = new HashSet<>();
+        if (aliases.containsKey(index)) {
+            targets.addAll(aliases.get(index));
+        } else {
+            targets.add(index);
+        }
+        Set<String> typeNames = types == null ? null : new HashSet<>(Arrays.asList(types.split(",")));
+
+        JsonObject request = body.isEmpty() ? new JsonObject() : new JsonParser().parse(body).getAsJsonObject();
+        int size = request.has("size") ? request.get("size").getAsInt() : 10;
+        List<String> terms = new ArrayList<>();
+        JsonObject query = request.getAsJsonObject("query");
+        if (query != null && query.has("query_string")) {
+            String text = query.getAsJsonObject("query_string").get("query").getAsString();
+            for (String term : text.toLowerCase().split("\\s+")) {
+                term = term.substring(term.indexOf(':') + 1).replace("*", "");
+                if (!term.isEmpty()) {
+                    terms.add(term);
+                }
+            }
+        }
+
+        JsonArray hits = new JsonArray();
+        List<String> keys = new ArrayList<>(documents.keySet());
+        Collections.sort(keys);
+        int total = 0;
+        for (String key : keys) {
+            String[] parts = key.split("/", 3);
+            String source = documents.get(key);
+            if (source == null || !targets.contains(parts[0])
+                    || (typeNames != null && !typeNames.contains(parts[1]))) {
+                continue;
+            }
+            String lowerCase = source.toLowerCase();
+            boolean matches = true;
+            for (String term : terms) {
+                matches &= lowerCase.contains(term);
+            }
+            if (!matches) {
+                continue;
+            }
+            total++;
+            if (hits.size() < size) {
+                JsonObject hit = new JsonObject();
+                hit.addProperty("_index", parts[0]);
+                hit.addProperty("_type", parts[1]);
+                hit.addProperty("_id", parts[2]);
+                hit.addProperty("_score", 1.0);
+                hits.add(hit);
+            }
+        }
+
+        JsonObject result = new JsonObject();
+        result.addProperty("total", total);
+        result.addProperty("max_score", total > 0 ? 1.0 : 0.0);
+        result.add("hits", hits);
+        JsonObject response = new JsonObject();
+        response.addProperty("took", 0);
+        response.addProperty("timed_out", false);
+        response.add("hits", result);
+        searchRequests.incrementAndGet();
+        respond(exchange, 200, response.toString());
+    }
+
+    private static String key(String index, String type, String id) {
+        return index + "/" + type + "/" + id;
+    }
+
+    private static String error(String type, String reason) {
+        JsonObject cause = new JsonObject();
+        cause.addProperty("type", type);
+        cause.addProperty("reason", reason);
+        JsonObject error = new JsonObject();
+        error.add("error", cause);
+        return error.toString();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * A write operation accepted by a bulk request.
+     */
+    public static class Operation {
+
+        private final String operation;
+
+        private final String index;
+
+        private final String type;
+
+        private final String id;
+
+        private final String source;
+
+        private final long nanoTime;
+
+        Operation(String operation, String index, String type, String id, String source, long nanoTime) {
+            this.operation = operation;
+            this.index = index;
+            this.type = type;
+            this.id = id;
+            this.source = source;
+            this.nanoTime = nanoTime;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Return the JSON source of an index operation, or null for a delete.
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * Return the {@link System#nanoTime()} at which the operation became visible.
+         */
+        public long getNanoTime() {
+            return nanoTime;
+        }
+    }
+}
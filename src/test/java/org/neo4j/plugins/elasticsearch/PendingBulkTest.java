@@ -0,0 +1,112 @@
+package org.neo4j.plugins.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.DocumentResult;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class PendingBulkTest {
+
+    @Test
+    public void testChunksByActions() throws Exception {
+        List<List<String>> chunks = new ArrayList<>();
+        try (PendingBulk pendingBulk = new PendingBulk("index_test", 3, Long.MAX_VALUE, 100, null)) {
+            for (int i = 0; i < 7; i++) {
+                pendingBulk.index("type_node_index_test", String.valueOf(i), "{}");
+            }
+            assertFalse(pendingBulk.isSpilled());
+            pendingBulk.forEachChunk(chunk -> chunks.add(ids(chunk)));
+        }
+
+        assertEquals(3, chunks.size());
+        assertEquals(3, chunks.get(0).size());
+        assertEquals(3, chunks.get(1).size());
+        assertEquals(1, chunks.get(2).size());
+    }
+
+    @Test
+    public void testChunksBySize() throws Exception {
+        List<List<String>> chunks = new ArrayList<>();
+        try (PendingBulk pendingBulk = new PendingBulk("index_test", 1000, 1000, 100, null)) {
+            for (int i = 0; i < 4; i++) {
+                pendingBulk.index("type_node_index_test", String.valueOf(i), new String(new char[400]));
+            }
+            pendingBulk.forEachChunk(chunk -> chunks.add(ids(chunk)));
+        }
+
+        assertEquals(2, chunks.size());
+        assertEquals(2, chunks.get(0).size());
+        assertEquals(2, chunks.get(1).size());
+    }
+
+    @Test
+    public void testChunksByUtf8Bytes() throws Exception {
+        List<List<String>> chunks = new ArrayList<>();
+        // 300 characters but 600 bytes, 700 with the metadata overhead
+        String source = new String(new char[300]).replace('\0', '\u00e9');
+        try (PendingBulk pendingBulk = new PendingBulk("index_test", 1000, 1500, 100, null)) {
+            for (int i = 0; i < 4; i++) {
+                pendingBulk.index("type_node_index_test", String.valueOf(i), source);
+            }
+            pendingBulk.forEachChunk(chunk -> chunks.add(ids(chunk)));
+        }
+
+        assertEquals(2, chunks.size());
+        assertEquals(2, chunks.get(0).size());
+        assertEquals(2, chunks.get(1).size());
+    }
+
+    @Test
+    public void testSpillFileIsOwnerOnly() throws Exception {
+        Path directory = Files.createTempDirectory("pending-bulk-test");
+        try (PendingBulk pendingBulk = new PendingBulk("index_test", 10, Long.MAX_VALUE, 1,
+                directory.resolve("spill").toFile())) {
+            pendingBulk.index("type_node_index_test", "0", "{}");
+            assertTrue(pendingBulk.isSpilled());
+            Path spillFile = pendingBulk.spillFile();
+            assertEquals(directory.resolve("spill"), spillFile.getParent());
+            assumeTrue(spillFile.getFileSystem().supportedFileAttributeViews().contains("posix"));
+            assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(spillFile));
+        }
+    }
+
+    @Test
+    public void testSpillKeepsOrder() throws Exception {
+        List<String> ids = new ArrayList<>();
+        try (PendingBulk pendingBulk = new PendingBulk("index_test", 4, Long.MAX_VALUE, 5, null)) {
+            for (int i = 0; i < 12; i++) {
+                if (i % 3 == 0) {
+                    pendingBulk.delete("type_node_index_test", String.valueOf(i));
+                } else {
+                    pendingBulk.index("type_node_index_test", String.valueOf(i), "{\"id\":\"" + i + "\"}");
+                }
+            }
+            assertTrue(pendingBulk.isSpilled());
+            assertEquals(12, pendingBulk.size());
+            pendingBulk.forEachChunk(chunk -> {
+                assertTrue(chunk.size() <= 4);
+                ids.addAll(ids(chunk));
+            });
+        }
+
+        for (int i = 0; i < 12; i++) {
+            assertEquals(String.valueOf(i), ids.get(i));
+        }
+    }
+
+    private static List<String> ids(List<BulkableAction<DocumentResult>> chunk) {
+        List<String> ids = new ArrayList<>();
+        for (BulkableAction<DocumentResult> action : chunk) {
+            ids.add(action.getId());
+        }
+        return ids;
+    }
+}